@@ -0,0 +1,202 @@
+package com.github.bakaoh.jatpool.loadtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TCP proxy between the pool and a backend which injects network faults.
+ *
+ * @author taitt
+ */
+public class ChaosProxy {
+
+    public enum Fault {
+
+        /**
+         * Forward bytes untouched
+         */
+        NONE,
+        /**
+         * Delay every chunk of the response
+         */
+        LATENCY,
+        /**
+         * Reset open connections and every new one
+         */
+        RESET,
+        /**
+         * Stop accepting, new connections stall in the listen backlog
+         */
+        SLOW_ACCEPT,
+        /**
+         * Keep connections open but drop every byte
+         */
+        BLACKHOLE
+    }
+
+    private final int port;
+    private final String targetHost;
+    private final int targetPort;
+    private final long delay;
+    private final Map<Socket, Boolean> sockets = new ConcurrentHashMap<Socket, Boolean>();
+    private volatile Fault fault = Fault.NONE;
+    private volatile boolean running = false;
+    private ServerSocket serverSocket;
+
+    /**
+     * @param port local port to listen on
+     * @param targetHost backend host
+     * @param targetPort backend port
+     * @param delay delay in milliseconds used by LATENCY
+     */
+    public ChaosProxy(int port, String targetHost, int targetPort, long delay) {
+        this.port = port;
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.delay = delay;
+    }
+
+    public void start() throws IOException {
+        // a backlog of 1 makes connects stall once the proxy stops accepting
+        serverSocket = new ServerSocket(port, 1);
+        // wake up to notice SLOW_ACCEPT while no client connects
+        serverSocket.setSoTimeout(100);
+        running = true;
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() {
+                while (running) {
+                    if (fault == Fault.SLOW_ACCEPT) {
+                        sleep(10);
+                        continue;
+                    }
+                    try {
+                        final Socket client = serverSocket.accept();
+                        Thread conn = new Thread(new Runnable() {
+                            public void run() {
+                                handle(client);
+                            }
+                        }, "ChaosProxy-Conn");
+                        conn.setDaemon(true);
+                        conn.start();
+                    } catch (IOException e) {
+                        // accept timed out or closed by stop()
+                    }
+                }
+            }
+        }, "ChaosProxy-" + port);
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+        }
+        resetAll();
+    }
+
+    public Fault getFault() {
+        return fault;
+    }
+
+    public void setFault(Fault fault) {
+        this.fault = fault;
+        if (fault == Fault.RESET) {
+            resetAll();
+        }
+    }
+
+    public int getConnectionCount() {
+        return sockets.size() / 2;
+    }
+
+    private void handle(Socket client) {
+        if (fault == Fault.RESET) {
+            reset(client);
+            return;
+        }
+        Socket backend;
+        try {
+            backend = new Socket(targetHost, targetPort);
+            backend.setTcpNoDelay(true);
+            client.setTcpNoDelay(true);
+        } catch (IOException e) {
+            reset(client);
+            return;
+        }
+        sockets.put(client, Boolean.TRUE);
+        sockets.put(backend, Boolean.TRUE);
+        Thread upstream = new Thread(new Pump(client, backend, false), "ChaosProxy-Up");
+        upstream.setDaemon(true);
+        upstream.start();
+        new Pump(backend, client, true).run();
+    }
+
+    private void resetAll() {
+        for (Socket socket : sockets.keySet()) {
+            reset(socket);
+        }
+    }
+
+    private void reset(Socket socket) {
+        sockets.remove(socket);
+        try {
+            // linger 0 makes close() send a RST
+            socket.setSoLinger(true, 0);
+            socket.close();
+        } catch (IOException e) {
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Pump implements Runnable {
+
+        private final Socket from;
+        private final Socket to;
+        private final boolean isResponse;
+
+        Pump(Socket from, Socket to, boolean isResponse) {
+            this.from = from;
+            this.to = to;
+            this.isResponse = isResponse;
+        }
+
+        public void run() {
+            byte[] buf = new byte[8192];
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    Fault current = fault;
+                    if (current == Fault.BLACKHOLE) {
+                        continue;
+                    }
+                    if (current == Fault.LATENCY && isResponse) {
+                        sleep(delay);
+                    }
+                    out.write(buf, 0, n);
+                    out.flush();
+                }
+            } catch (IOException e) {
+            } finally {
+                reset(from);
+                reset(to);
+            }
+        }
+    }
+}
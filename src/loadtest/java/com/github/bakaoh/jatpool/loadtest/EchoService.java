@@ -0,0 +1,105 @@
+package com.github.bakaoh.jatpool.loadtest;
+
+import org.apache.thrift.TApplicationException;
+import org.apache.thrift.TException;
+import org.apache.thrift.TProcessor;
+import org.apache.thrift.TServiceClient;
+import org.apache.thrift.TServiceClientFactory;
+import org.apache.thrift.protocol.TMessage;
+import org.apache.thrift.protocol.TMessageType;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+
+/**
+ * Hand written equivalent of the generated code for
+ * <pre>service EchoService { string echo(1: string msg) }</pre>
+ * with the argument written as a bare string.
+ *
+ * @author taitt
+ */
+public class EchoService {
+
+    public interface Iface {
+
+        String echo(String msg) throws TException;
+    }
+
+    public static class Client extends TServiceClient implements Iface {
+
+        public static class Factory implements TServiceClientFactory<Client> {
+
+            public Factory() {
+            }
+
+            public Client getClient(TProtocol prot) {
+                return new Client(prot);
+            }
+
+            public Client getClient(TProtocol iprot, TProtocol oprot) {
+                return new Client(iprot, oprot);
+            }
+        }
+
+        public Client(TProtocol prot) {
+            super(prot);
+        }
+
+        public Client(TProtocol iprot, TProtocol oprot) {
+            super(iprot, oprot);
+        }
+
+        public String echo(String msg) throws TException {
+            oprot_.writeMessageBegin(new TMessage("echo", TMessageType.CALL, ++seqid_));
+            oprot_.writeString(msg);
+            oprot_.writeMessageEnd();
+            oprot_.getTransport().flush();
+
+            TMessage reply = iprot_.readMessageBegin();
+            if (reply.type == TMessageType.EXCEPTION) {
+                TApplicationException x = TApplicationException.readFrom(iprot_);
+                iprot_.readMessageEnd();
+                throw x;
+            }
+            if (reply.seqid != seqid_) {
+                throw new TApplicationException(TApplicationException.BAD_SEQUENCE_ID,
+                        "echo failed: out of sequence response");
+            }
+            String result = iprot_.readString();
+            iprot_.readMessageEnd();
+            return result;
+        }
+    }
+
+    public static class Processor implements TProcessor {
+
+        private final Iface handler;
+
+        public Processor(Iface handler) {
+            this.handler = handler;
+        }
+
+        public boolean process(TProtocol in, TProtocol out) throws TException {
+            TMessage msg = in.readMessageBegin();
+            if (!"echo".equals(msg.name)) {
+                TProtocolUtil.skip(in, TType.STRING);
+                in.readMessageEnd();
+                TApplicationException x = new TApplicationException(TApplicationException.UNKNOWN_METHOD,
+                        "Invalid method name: '" + msg.name + "'");
+                out.writeMessageBegin(new TMessage(msg.name, TMessageType.EXCEPTION, msg.seqid));
+                x.write(out);
+                out.writeMessageEnd();
+                out.getTransport().flush();
+                return true;
+            }
+            String arg = in.readString();
+            in.readMessageEnd();
+            String result = handler.echo(arg);
+            out.writeMessageBegin(new TMessage(msg.name, TMessageType.REPLY, msg.seqid));
+            out.writeString(result);
+            out.writeMessageEnd();
+            out.getTransport().flush();
+            return true;
+        }
+    }
+}
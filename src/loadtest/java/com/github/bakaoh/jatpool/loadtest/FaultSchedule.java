@@ -0,0 +1,74 @@
+package com.github.bakaoh.jatpool.loadtest;
+
+import com.github.bakaoh.jatpool.loadtest.ChaosProxy.Fault;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Fault windows relative to the start of a run, parsed from
+ * <pre>start:duration:FAULT[,start:duration:FAULT...]</pre> in milliseconds.
+ *
+ * @author taitt
+ */
+public class FaultSchedule {
+
+    public static class Phase {
+
+        public final long start;
+        public final long end;
+        public final Fault fault;
+
+        public Phase(long start, long duration, Fault fault) {
+            this.start = start;
+            this.end = start + duration;
+            this.fault = fault;
+        }
+
+        @Override
+        public String toString() {
+            return fault + "[" + start + "-" + end + "]";
+        }
+    }
+
+    private final List<Phase> phases = new ArrayList<Phase>();
+
+    public static FaultSchedule parse(String spec) {
+        FaultSchedule schedule = new FaultSchedule();
+        if (spec == null || spec.trim().length() == 0) {
+            return schedule;
+        }
+        for (String item : spec.split(",")) {
+            String[] parts = item.trim().split(":");
+            if (parts.length != 3) {
+                throw new IllegalArgumentException("Invalid fault phase " + item);
+            }
+            schedule.add(Long.parseLong(parts[0]), Long.parseLong(parts[1]),
+                    Fault.valueOf(parts[2].toUpperCase()));
+        }
+        return schedule;
+    }
+
+    public FaultSchedule add(long start, long duration, Fault fault) {
+        phases.add(new Phase(start, duration, fault));
+        return this;
+    }
+
+    public Fault faultAt(long elapsed) {
+        for (Phase phase : phases) {
+            if (elapsed >= phase.start && elapsed < phase.end) {
+                return phase.fault;
+            }
+        }
+        return Fault.NONE;
+    }
+
+    public List<Phase> getPhases() {
+        return Collections.unmodifiableList(phases);
+    }
+
+    @Override
+    public String toString() {
+        return phases.toString();
+    }
+}
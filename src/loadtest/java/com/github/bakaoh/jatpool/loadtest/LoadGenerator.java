@@ -0,0 +1,119 @@
+package com.github.bakaoh.jatpool.loadtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Calls the echo service from a fixed number of threads at a fixed total rate
+ * and counts results until the next {@link #sample}. Keeping the rate when
+ * calls fail fast makes runs comparable, a worker which falls behind skips
+ * the missed calls instead of catching up in a burst.
+ *
+ * @author taitt
+ */
+public class LoadGenerator {
+
+    private final EchoService.Iface client;
+    private final int threads;
+    // time between two calls of a worker, 0 to call as fast as possible
+    private final long periodNanos;
+    private final String payload;
+    private final List<Thread> workers = new ArrayList<Thread>();
+    private final AtomicLong success = new AtomicLong(0);
+    private final AtomicLong errors = new AtomicLong(0);
+    private final AtomicLong latencySum = new AtomicLong(0);
+    private final AtomicLong latencyMax = new AtomicLong(0);
+    private volatile boolean running = false;
+
+    /**
+     * @param client
+     * @param threads number of worker threads
+     * @param payloadSize length of the echoed string
+     * @param rate total calls per second, 0 for no limit
+     */
+    public LoadGenerator(EchoService.Iface client, int threads, int payloadSize, int rate) {
+        this.client = client;
+        this.threads = threads;
+        this.periodNanos = rate > 0 ? threads * 1000000000L / rate : 0;
+        StringBuilder sb = new StringBuilder(payloadSize);
+        for (int i = 0; i < payloadSize; i++) {
+            sb.append((char) ('a' + i % 26));
+        }
+        this.payload = sb.toString();
+    }
+
+    public void start() {
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() {
+                    long next = System.nanoTime();
+                    while (running) {
+                        call();
+                        if (periodNanos > 0) {
+                            next += periodNanos;
+                            long now = System.nanoTime();
+                            if (next > now) {
+                                pause(next - now);
+                            } else {
+                                next = now;
+                            }
+                        }
+                    }
+                }
+            }, "LoadGenerator-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public void stop() throws InterruptedException {
+        running = false;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private static void pause(long nanos) {
+        try {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void call() {
+        long start = System.nanoTime();
+        boolean ok;
+        try {
+            ok = payload.equals(client.echo(payload));
+        } catch (Exception e) {
+            ok = false;
+        }
+        long latency = System.nanoTime() - start;
+        if (ok) {
+            success.incrementAndGet();
+        } else {
+            errors.incrementAndGet();
+        }
+        latencySum.addAndGet(latency);
+        long max = latencyMax.get();
+        while (latency > max && !latencyMax.compareAndSet(max, latency)) {
+            max = latencyMax.get();
+        }
+    }
+
+    /**
+     * Fill the call counters of a sample and reset them
+     */
+    public void sample(TimeSeries.Sample sample) {
+        sample.success = success.getAndSet(0);
+        sample.errors = errors.getAndSet(0);
+        long calls = sample.success + sample.errors;
+        long sum = latencySum.getAndSet(0);
+        sample.avgLatencyMicros = calls == 0 ? 0 : sum / calls / 1000;
+        sample.maxLatencyMicros = latencyMax.getAndSet(0) / 1000;
+    }
+}
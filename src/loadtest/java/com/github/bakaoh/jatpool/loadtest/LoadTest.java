@@ -0,0 +1,109 @@
+package com.github.bakaoh.jatpool.loadtest;
+
+import com.github.bakaoh.jatpool.Jatpool;
+import com.github.bakaoh.jatpool.JatpoolBuilder;
+import com.github.bakaoh.jatpool.connection.ConnectionPool;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs load through a pool against a local stand-in server behind a
+ * {@link ChaosProxy} and records how the pool goes through the faults.
+ *
+ * Arguments are key=value pairs, see {@link #DEFAULTS}. The time series is
+ * written as csv to the out file, the summary to stdout.
+ *
+ * @author taitt
+ */
+public class LoadTest {
+
+    private static final String[][] DEFAULTS = {
+        {"duration", "60000"},
+        {"interval", "1000"},
+        {"threads", "16"},
+        {"rate", "2000"},
+        {"payload", "128"},
+        {"delay", "2000"},
+        {"port", "19190"},
+        {"schedule", "10000:5000:LATENCY,20000:5000:RESET,30000:5000:SLOW_ACCEPT,40000:5000:BLACKHOLE"},
+        {"out", "build/loadtest.csv"}
+    };
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<String, String>();
+        for (String[] entry : DEFAULTS) {
+            opts.put(entry[0], entry[1]);
+        }
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i < 0 || !opts.containsKey(arg.substring(0, i))) {
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            }
+            opts.put(arg.substring(0, i), arg.substring(i + 1));
+        }
+
+        long duration = Long.parseLong(opts.get("duration"));
+        long interval = Long.parseLong(opts.get("interval"));
+        int port = Integer.parseInt(opts.get("port"));
+        FaultSchedule schedule = FaultSchedule.parse(opts.get("schedule"));
+
+        StandInServer server = new StandInServer(port);
+        server.start();
+        ChaosProxy proxy = new ChaosProxy(port + 1, "127.0.0.1", port, Long.parseLong(opts.get("delay")));
+        proxy.start();
+
+        Jatpool<EchoService.Iface> jatpool = JatpoolBuilder.of(EchoService.Iface.class)
+                .host("127.0.0.1", port + 1)
+                .build();
+        ConnectionPool pool = jatpool.getPool();
+        LoadGenerator generator = new LoadGenerator(jatpool.cli(),
+                Integer.parseInt(opts.get("threads")), Integer.parseInt(opts.get("payload")),
+                Integer.parseInt(opts.get("rate")));
+        TimeSeries series = new TimeSeries();
+
+        System.out.println("schedule=" + schedule);
+        long start = System.currentTimeMillis();
+        generator.start();
+        long next = start + interval;
+        while (next - start <= duration) {
+            // switch faults at a finer grain than the sampling interval
+            long now = System.currentTimeMillis();
+            while (now < next) {
+                ChaosProxy.Fault fault = schedule.faultAt(now - start);
+                if (fault != proxy.getFault()) {
+                    proxy.setFault(fault);
+                }
+                Thread.sleep(Math.min(50, next - now));
+                now = System.currentTimeMillis();
+            }
+            TimeSeries.Sample sample = new TimeSeries.Sample();
+            sample.elapsed = now - start;
+            sample.fault = proxy.getFault();
+            generator.sample(sample);
+            sample.readPool(pool);
+            series.add(sample);
+            System.out.println(sample.toCsv());
+            next += interval;
+        }
+        proxy.setFault(ChaosProxy.Fault.NONE);
+        generator.stop();
+        jatpool.close();
+        proxy.stop();
+        server.stop();
+
+        File file = new File(opts.get("out"));
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        PrintStream out = new PrintStream(new FileOutputStream(file));
+        try {
+            series.writeCsv(out);
+        } finally {
+            out.close();
+        }
+        series.writeSummary(System.out, schedule);
+    }
+}
@@ -0,0 +1,48 @@
+package com.github.bakaoh.jatpool.loadtest;
+
+import org.apache.thrift.TException;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TTransportException;
+
+/**
+ * Local framed binary echo server standing in for a real backend.
+ *
+ * @author taitt
+ */
+public class StandInServer {
+
+    private final TServer server;
+    private final Thread thread;
+
+    public StandInServer(int port) throws TTransportException {
+        TServerSocket socket = new TServerSocket(port);
+        this.server = new TThreadPoolServer(new TThreadPoolServer.Args(socket)
+                .processor(new EchoService.Processor(new EchoService.Iface() {
+                    public String echo(String msg) throws TException {
+                        return msg;
+                    }
+                }))
+                .transportFactory(new TFramedTransport.Factory())
+                .minWorkerThreads(4));
+        this.thread = new Thread(new Runnable() {
+            public void run() {
+                server.serve();
+            }
+        }, "StandInServer-" + port);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() throws InterruptedException {
+        thread.start();
+        while (!server.isServing()) {
+            Thread.sleep(10);
+        }
+    }
+
+    public void stop() {
+        server.stop();
+    }
+}
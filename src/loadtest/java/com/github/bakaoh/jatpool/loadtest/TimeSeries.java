@@ -0,0 +1,104 @@
+package com.github.bakaoh.jatpool.loadtest;
+
+import com.github.bakaoh.jatpool.connection.ConnectionPool;
+import com.github.bakaoh.jatpool.loadtest.ChaosProxy.Fault;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Throughput, error rate and pool state per interval of a run.
+ *
+ * @author taitt
+ */
+public class TimeSeries {
+
+    public static final String HEADER = "elapsed_ms,fault,success,errors,error_rate,avg_latency_us,"
+            + "max_latency_us,open,idle,busy,blocked,host_down";
+
+    public static class Sample {
+
+        public long elapsed;
+        public Fault fault;
+        public long success;
+        public long errors;
+        public long avgLatencyMicros;
+        public long maxLatencyMicros;
+        public int open;
+        public int idle;
+        public int busy;
+        public int blocked;
+        public boolean hostDown;
+
+        public void readPool(ConnectionPool pool) {
+            open = pool.getOpenCount();
+            idle = pool.getIdleCount();
+            busy = pool.getBusyCount();
+            blocked = pool.getBlockedCount();
+            hostDown = pool.isShutdown();
+        }
+
+        public double errorRate() {
+            long calls = success + errors;
+            return calls == 0 ? 0 : (double) errors / calls;
+        }
+
+        public String toCsv() {
+            return elapsed + "," + fault + "," + success + "," + errors + ","
+                    + String.format("%.4f", errorRate()) + "," + avgLatencyMicros + ","
+                    + maxLatencyMicros + "," + open + "," + idle + "," + busy + ","
+                    + blocked + "," + hostDown;
+        }
+    }
+
+    private final List<Sample> samples = new ArrayList<Sample>();
+
+    public void add(Sample sample) {
+        samples.add(sample);
+    }
+
+    public List<Sample> getSamples() {
+        return samples;
+    }
+
+    public void writeCsv(PrintStream out) {
+        out.println(HEADER);
+        for (Sample sample : samples) {
+            out.println(sample.toCsv());
+        }
+    }
+
+    /**
+     * Time from the end of a fault phase to the end of the first interval
+     * with successful calls and no error, or -1 if the pool never recovered
+     */
+    public long recoveryTime(FaultSchedule.Phase phase) {
+        for (Sample sample : samples) {
+            if (sample.elapsed > phase.end && sample.errors == 0 && sample.success > 0) {
+                return sample.elapsed - phase.end;
+            }
+        }
+        return -1;
+    }
+
+    public void writeSummary(PrintStream out, FaultSchedule schedule) {
+        long success = 0;
+        long errors = 0;
+        for (Sample sample : samples) {
+            success += sample.success;
+            errors += sample.errors;
+        }
+        long calls = success + errors;
+        out.println("calls=" + calls + " success=" + success + " errors=" + errors
+                + " error_rate=" + String.format("%.4f", calls == 0 ? 0 : (double) errors / calls));
+        for (FaultSchedule.Phase phase : schedule.getPhases()) {
+            long phaseErrors = 0;
+            for (Sample sample : samples) {
+                if (sample.elapsed > phase.start && sample.elapsed <= phase.end) {
+                    phaseErrors += sample.errors;
+                }
+            }
+            out.println(phase + " errors=" + phaseErrors + " recovery_ms=" + recoveryTime(phase));
+        }
+    }
+}
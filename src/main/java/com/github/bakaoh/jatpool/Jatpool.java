@@ -3,15 +3,27 @@ package com.github.bakaoh.jatpool;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.thrift.TApplicationException;
 import org.apache.thrift.TException;
 import org.apache.thrift.TServiceClient;
 import org.apache.thrift.TServiceClientFactory;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TTransportFactory;
 import com.github.bakaoh.jatpool.connection.Connection;
 import com.github.bakaoh.jatpool.connection.ConnectionPool;
 import com.github.bakaoh.jatpool.connection.Host;
+import com.github.bakaoh.jatpool.trace.CallListener;
+import com.github.bakaoh.jatpool.trace.CallTrace;
 
 /**
  *
@@ -20,18 +32,187 @@ import com.github.bakaoh.jatpool.connection.Host;
  */
 public class Jatpool<I> {
 
-    private static final Map<String, Jatpool> INSTANCES = new ConcurrentHashMap<String, Jatpool>();
+    private static final ConcurrentMap<String, FutureTask<Jatpool<?>>> INSTANCES
+            = new ConcurrentHashMap<String, FutureTask<Jatpool<?>>>();
+    private static final Map<String, ConnectionPool> POOLS = new HashMap<String, ConnectionPool>();
+    private static final AtomicBoolean HOOK_REGISTERED = new AtomicBoolean(false);
 
+    /**
+     * Get the shared client of a service, see
+     * {@link #getInstance(Class, String, String)}
+     */
     public static <I> Jatpool<I> getInstance(Class<I> iface, String hostPort) {
-        String key = mapCode(iface, hostPort);
-        if (INSTANCES.get(key) == null) {
-            INSTANCES.put(key, JatpoolBuilder.of(iface).host(Host.parse(hostPort)).build());
+        return getInstance(iface, hostPort, null);
+    }
+
+    /**
+     * Get the shared client of a service registered on a TMultiplexedProcessor.
+     * All instances of the same host share one connection pool.
+     *
+     * The instance is cached and owned by the registry, getting it doesn't
+     * take a reference so it can be called per request and must not be closed
+     * after use. {@link #closeAll(long)} closes it. Closing it drops it from
+     * the registry, it's closed once all handles from {@link #acquire} are
+     * closed too.
+     */
+    public static <I> Jatpool<I> getInstance(Class<I> iface, String hostPort, String serviceName) {
+        String key = mapCode(iface, hostPort, serviceName);
+        while (true) {
+            FutureTask<Jatpool<?>> task = registeredTask(key, iface, hostPort, serviceName);
+            Jatpool<I> instance = getResult(key, task);
+            if (!instance.isReleased.get()) {
+                return instance;
+            }
+            // closed concurrently, drop it and build a new one
+            INSTANCES.remove(key, task);
+        }
+    }
+
+    /**
+     * Take a reference on the shared client of a service, see
+     * {@link #acquire(Class, String, String)}
+     */
+    public static <I> Handle<I> acquire(Class<I> iface, String hostPort) {
+        return acquire(iface, hostPort, null);
+    }
+
+    /**
+     * Take a reference on the shared client of
+     * {@link #getInstance(Class, String, String)}. Each call returns a new
+     * handle which must be closed once, the client stays open until its last
+     * handle is closed even if it's dropped from the registry meanwhile.
+     */
+    public static <I> Handle<I> acquire(Class<I> iface, String hostPort, String serviceName) {
+        String key = mapCode(iface, hostPort, serviceName);
+        while (true) {
+            FutureTask<Jatpool<?>> task = registeredTask(key, iface, hostPort, serviceName);
+            Jatpool<I> instance = getResult(key, task);
+            if (!instance.isReleased.get() && instance.retain()) {
+                return new Handle<I>(instance);
+            }
+            INSTANCES.remove(key, task);
+        }
+    }
+
+    private static <I> FutureTask<Jatpool<?>> registeredTask(final String key, final Class<I> iface,
+            final String hostPort, final String serviceName) {
+        FutureTask<Jatpool<?>> task = INSTANCES.get(key);
+        if (task != null) {
+            return task;
+        }
+        FutureTask<Jatpool<?>> newTask = new FutureTask<Jatpool<?>>(new Callable<Jatpool<?>>() {
+            public Jatpool<?> call() {
+                ConnectionPool pool = sharedPool(hostPort);
+                try {
+                    Jatpool<I> instance = JatpoolBuilder.of(iface)
+                            .pool(pool)
+                            .service(serviceName)
+                            .build();
+                    instance.registryKey = key;
+                    return instance;
+                } finally {
+                    releasePool(pool, 0);
+                }
+            }
+        });
+        task = INSTANCES.putIfAbsent(key, newTask);
+        if (task != null) {
+            return task;
+        }
+        newTask.run();
+        return newTask;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <I> Jatpool<I> getResult(String key, FutureTask<Jatpool<?>> task) {
+        try {
+            // the key is made of the interface, its instance is a Jatpool<I>
+            return (Jatpool<I>) task.get();
+        } catch (ExecutionException ex) {
+            INSTANCES.remove(key, task);
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException("Can't create instance " + key, cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while creating instance " + key, ex);
+        }
+    }
+
+    private static ConnectionPool sharedPool(String hostPort) {
+        ConnectionPool pool;
+        synchronized (POOLS) {
+            pool = POOLS.get(hostPort);
+            // hold the pool until the instance acquires it
+            if (pool != null && pool.acquire()) {
+                return pool;
+            }
+            Config config = new Config();
+            config.locked = true;
+            pool = new ConnectionPool(Host.parse(hostPort), config, false);
+            pool.acquire();
+            POOLS.put(hostPort, pool);
+        }
+        // connect outside the lock so a slow host doesn't block the others,
+        // concurrent callers open their own connections meanwhile
+        pool.init();
+        return pool;
+    }
+
+    /**
+     * List all pools which are not shut down yet
+     */
+    public static List<ConnectionPool> getLivePools() {
+        return ConnectionPool.getLivePools();
+    }
+
+    /**
+     * Shut down every live pool. All pools stop lending connections at once,
+     * then wait together for their borrowed connections to be returned until
+     * the drain timeout is over.
+     *
+     * @param drainTimeout max time in milliseconds to wait for all pools
+     */
+    public static void closeAll(long drainTimeout) {
+        INSTANCES.clear();
+        synchronized (POOLS) {
+            POOLS.clear();
+        }
+        long deadline = System.currentTimeMillis() + drainTimeout;
+        List<ConnectionPool> pools = ConnectionPool.getLivePools();
+        for (ConnectionPool pool : pools) {
+            pool.drain();
+        }
+        for (ConnectionPool pool : pools) {
+            pool.awaitDrain(Math.max(0, deadline - System.currentTimeMillis()));
+        }
+        for (ConnectionPool pool : pools) {
+            pool.shutdown(0);
+        }
+    }
+
+    /**
+     * Close all pools when the JVM shuts down
+     *
+     * @param drainTimeout see {@link #closeAll(long)}
+     */
+    public static void registerShutdownHook(final long drainTimeout) {
+        if (HOOK_REGISTERED.compareAndSet(false, true)) {
+            Runtime.getRuntime().addShutdownHook(new Thread("Jatpool-Shutdown") {
+                @Override
+                public void run() {
+                    closeAll(drainTimeout);
+                }
+            });
         }
-        return INSTANCES.get(key);
     }
 
-    private static String mapCode(Class iface, String hostPort) {
-        return iface.getCanonicalName() + "_" + hostPort;
+    private static String mapCode(Class iface, String hostPort, String serviceName) {
+        return serviceName == null
+                ? iface.getCanonicalName() + "_" + hostPort
+                : iface.getCanonicalName() + "_" + hostPort + "_" + serviceName;
     }
 
     public static class Config {
@@ -39,6 +220,9 @@ public class Jatpool<I> {
         private boolean locked = false;
         public boolean isFramed = true;
         public boolean isCompacted = false;
+        public TTransportFactory transportFactory = null;
+        public TProtocolFactory protocolFactory = null;
+        public String serviceName = null;
         public int retryNum = 3;
         public int connectTimeout = 1000;
         public int socketTimeout = 3000;
@@ -60,6 +244,9 @@ public class Jatpool<I> {
             this.locked = that.locked;
             this.isFramed = that.isFramed;
             this.isCompacted = that.isCompacted;
+            this.transportFactory = that.transportFactory;
+            this.protocolFactory = that.protocolFactory;
+            this.serviceName = that.serviceName;
             this.retryNum = that.retryNum;
             this.connectTimeout = that.connectTimeout;
             this.socketTimeout = that.socketTimeout;
@@ -76,15 +263,71 @@ public class Jatpool<I> {
         }
     }
 
+    /**
+     * A reference on a shared instance, see
+     * {@link Jatpool#acquire(Class, String, String)}
+     *
+     * @param <I>
+     */
+    public static class Handle<I> {
+
+        private final Jatpool<I> instance;
+        private final AtomicBoolean closed = new AtomicBoolean(false);
+
+        Handle(Jatpool<I> instance) {
+            this.instance = instance;
+        }
+
+        public I cli() {
+            return instance.cli();
+        }
+
+        public Jatpool<I> get() {
+            return instance;
+        }
+
+        /**
+         * Release this reference, calling it again does nothing
+         */
+        public void close() {
+            close(0);
+        }
+
+        /**
+         * Release this reference. When it's the last client of the pool, wait
+         * for in-flight calls to complete before closing connections.
+         *
+         * @param drainTimeout max time to wait in milliseconds
+         */
+        public void close(long drainTimeout) {
+            if (closed.compareAndSet(false, true)) {
+                instance.release(drainTimeout);
+            }
+        }
+    }
+
     private final Config config;
-    private final ConnectionPool<I> pool;
+    private final TServiceClientFactory<? extends TServiceClient> factory;
+    private final String clientKey;
+    private final ConnectionPool pool;
     private final I client;
+    private final CallListener[] listeners;
+    // the owner's reference plus one per open handle
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private final AtomicBoolean isReleased = new AtomicBoolean(false);
+    private String registryKey = null;
 
     Jatpool(Class<I> iface, Class<TServiceClientFactory<? extends TServiceClient>> factoryCls,
-            Host host, Config config) {
+            Host host, ConnectionPool pool, Config config, CallListener[] listeners) {
         this.config = new Config(config);
+        this.listeners = listeners;
         this.config.locked = true;
-        this.pool = new ConnectionPool<I>(host, createFactory(factoryCls), this.config);
+        this.factory = createFactory(factoryCls);
+        this.clientKey = Connection.clientKey(factory, this.config.serviceName);
+        this.pool = pool != null ? pool : new ConnectionPool(host, this.config);
+        if (!this.pool.acquire()) {
+            throw new IllegalStateException("Pool is closed " + this.pool.getHost());
+        }
         this.client = (I) Proxy.newProxyInstance(
                 iface.getClassLoader(),
                 new Class[]{iface},
@@ -106,30 +349,131 @@ public class Jatpool<I> {
         return client;
     }
 
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    private boolean retain() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                return false;
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Close this instance, calling it again does nothing. A shared instance
+     * is dropped from the registry and closed with its last handle.
+     */
     public void close() {
-        this.pool.shutdown();
+        close(0);
+    }
+
+    /**
+     * Close this instance, see {@link #close()}. When the pool has no other
+     * client, wait for in-flight calls to complete before closing connections.
+     *
+     * @param drainTimeout max time to wait in milliseconds
+     */
+    public void close(long drainTimeout) {
+        if (!isReleased.compareAndSet(false, true)) {
+            return;
+        }
+        if (registryKey != null) {
+            FutureTask<Jatpool<?>> task = INSTANCES.get(registryKey);
+            if (task != null && task.isDone() && Jatpool.<I>getResult(registryKey, task) == this) {
+                INSTANCES.remove(registryKey, task);
+            }
+        }
+        release(drainTimeout);
+    }
+
+    private void release(long drainTimeout) {
+        // every reference is released once, by close() or by its handle
+        if (refCount.decrementAndGet() == 0) {
+            releasePool(pool, drainTimeout);
+        }
+    }
+
+    private static void releasePool(ConnectionPool pool, long drainTimeout) {
+        boolean last;
+        synchronized (POOLS) {
+            last = pool.release();
+            if (last) {
+                POOLS.values().remove(pool);
+            }
+        }
+        if (last) {
+            pool.shutdown(drainTimeout);
+        }
+    }
+
+    public boolean isClosed() {
+        return refCount.get() <= 0;
     }
 
     private class PoolHandler implements InvocationHandler {
 
         public Object invoke(Object proxy, Method method, Object[] args) throws TException {
+            // no allocation nor clock reading without listeners
+            CallTrace trace = listeners.length == 0 ? null : new CallTrace(method, pool.getHost(), listeners);
             TException lastException = null;
-            for (int i = 0; i < config.retryNum; i++) {
-                Connection conn = null;
-                try {
-                    conn = pool.borrow(config.maxTimeWaitForConnection);
-                    return conn.execute(method, args);
-                } catch (TApplicationException ae) {
-                    throw ae;
-                } catch (TException pe) {
-                    lastException = pe;
-                } finally {
-                    if (conn != null) {
-                        pool.returnConnection(conn, lastException);
+            Throwable error = null;
+            try {
+                for (int i = 0; i < config.retryNum; i++) {
+                    Connection conn = null;
+                    TException attemptException = null;
+                    long mark = 0;
+                    if (trace != null) {
+                        trace.attempt();
+                        mark = System.nanoTime();
                     }
+                    try {
+                        conn = pool.borrow(config.maxTimeWaitForConnection, trace);
+                        if (trace != null) {
+                            mark = trace.record(CallTrace.Phase.BORROW, mark);
+                        }
+                        Object result = conn.execute(factory, config.serviceName, clientKey, method, args);
+                        if (trace != null) {
+                            mark = trace.record(CallTrace.Phase.EXECUTE, mark);
+                        }
+                        return result;
+                    } catch (TApplicationException ae) {
+                        // the server answered, its time belongs to execute
+                        if (trace != null) {
+                            mark = trace.record(CallTrace.Phase.EXECUTE, mark);
+                        }
+                        error = ae;
+                        throw ae;
+                    } catch (TException pe) {
+                        lastException = pe;
+                        attemptException = pe;
+                        if (trace != null) {
+                            mark = trace.record(CallTrace.Phase.RETRY, mark);
+                        }
+                    } finally {
+                        if (conn != null) {
+                            pool.returnConnection(conn, attemptException);
+                            if (trace != null) {
+                                trace.record(CallTrace.Phase.RETURN, mark);
+                            }
+                        }
+                    }
+                }
+                error = lastException;
+                throw lastException;
+            } catch (RuntimeException re) {
+                error = re;
+                throw re;
+            } finally {
+                if (trace != null) {
+                    trace.complete(error);
                 }
             }
-            throw lastException;
         }
     }
 }
@@ -2,8 +2,15 @@ package com.github.bakaoh.jatpool;
 
 import org.apache.thrift.TServiceClient;
 import org.apache.thrift.TServiceClientFactory;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TTransportFactory;
 import com.github.bakaoh.jatpool.Jatpool.Config;
+import com.github.bakaoh.jatpool.connection.CompressedFramedTransport;
+import com.github.bakaoh.jatpool.connection.ConnectionPool;
 import com.github.bakaoh.jatpool.connection.Host;
+import com.github.bakaoh.jatpool.trace.CallListener;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  *
@@ -14,7 +21,9 @@ public class JatpoolBuilder<Iface> {
 
     private final Class<Iface> iface;
     private Host host;
+    private ConnectionPool pool;
     private final Config config = new Config();
+    private final List<CallListener> listeners = new ArrayList<CallListener>();
     private final Class<TServiceClientFactory<? extends TServiceClient>> factory;
 
     public static <Iface> JatpoolBuilder<Iface> of(Class<Iface> ifaceCls) {
@@ -53,6 +62,17 @@ public class JatpoolBuilder<Iface> {
         return this;
     }
 
+    /**
+     * Share the connections of an existing pool, transport and pool settings
+     * of this builder are ignored. build() throws IllegalStateException if
+     * the pool is already released.
+     */
+    public JatpoolBuilder<Iface> pool(ConnectionPool pool) {
+        this.pool = pool;
+        this.host = pool.getHost();
+        return this;
+    }
+
     public JatpoolBuilder<Iface> framed(boolean isFramed) {
         this.config.isFramed = isFramed;
         return this;
@@ -63,11 +83,53 @@ public class JatpoolBuilder<Iface> {
         return this;
     }
 
+    /**
+     * Wrap the socket with a custom transport. Overrides {@link #framed}.
+     */
+    public JatpoolBuilder<Iface> transportFactory(TTransportFactory transportFactory) {
+        this.config.transportFactory = transportFactory;
+        return this;
+    }
+
+    /**
+     * Use a custom protocol. Overrides {@link #compacted}.
+     */
+    public JatpoolBuilder<Iface> protocolFactory(TProtocolFactory protocolFactory) {
+        this.config.protocolFactory = protocolFactory;
+        return this;
+    }
+
+    /**
+     * Compress frames larger than threshold bytes, server must use
+     * {@link CompressedFramedTransport.Factory} too.
+     */
+    public JatpoolBuilder<Iface> compressed(int threshold) {
+        this.config.transportFactory = new CompressedFramedTransport.Factory(threshold);
+        return this;
+    }
+
+    /**
+     * Call the service registered with this name on a TMultiplexedProcessor.
+     */
+    public JatpoolBuilder<Iface> service(String serviceName) {
+        this.config.serviceName = serviceName;
+        return this;
+    }
+
+    /**
+     * Receive the phase timings of every call, see SlowCallSampler
+     */
+    public JatpoolBuilder<Iface> listener(CallListener listener) {
+        this.listeners.add(listener);
+        return this;
+    }
+
     public Config getConfig() {
         return config;
     }
 
     public Jatpool<Iface> build() {
-        return new Jatpool<Iface>(iface, factory, host, config);
+        return new Jatpool<Iface>(iface, factory, host, pool, config,
+                listeners.toArray(new CallListener[listeners.size()]));
     }
 }
@@ -0,0 +1,228 @@
+package com.github.bakaoh.jatpool.connection;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.apache.thrift.TByteArrayOutputStream;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryInputTransport;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
+
+/**
+ * Framed transport that compresses frames larger than a threshold.
+ *
+ * Frame layout: 4 bytes frame size, 1 byte flag, then either the raw payload
+ * (flag 0) or 4 bytes uncompressed size followed by the deflated payload
+ * (flag 1). The server must wrap its transport with {@link Factory} too.
+ *
+ * @author taitt
+ */
+public class CompressedFramedTransport extends TTransport {
+
+    public static final int DEFAULT_THRESHOLD = 4096;
+    private static final int DEFAULT_MAX_LENGTH = 16384000;
+    private static final byte FLAG_RAW = 0;
+    private static final byte FLAG_DEFLATE = 1;
+
+    private final TTransport transport;
+    private final int threshold;
+    private final int maxLength;
+    private final TByteArrayOutputStream writeBuffer = new TByteArrayOutputStream(1024);
+    private final TByteArrayOutputStream compressBuffer = new TByteArrayOutputStream(1024);
+    private final TMemoryInputTransport readBuffer = new TMemoryInputTransport(new byte[0]);
+    private final byte[] readHeader = new byte[5];
+    private final byte[] writeHeader = new byte[5];
+    private final byte[] sizeBuf = new byte[4];
+    private final byte[] chunk = new byte[4096];
+    // created on first use, freed by close()
+    private Deflater deflater;
+    private Inflater inflater;
+
+    public static class Factory extends TTransportFactory {
+
+        private final int threshold;
+
+        public Factory() {
+            this(DEFAULT_THRESHOLD);
+        }
+
+        public Factory(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        public TTransport getTransport(TTransport base) {
+            return new CompressedFramedTransport(base, threshold);
+        }
+    }
+
+    public CompressedFramedTransport(TTransport transport) {
+        this(transport, DEFAULT_THRESHOLD);
+    }
+
+    public CompressedFramedTransport(TTransport transport, int threshold) {
+        this(transport, threshold, DEFAULT_MAX_LENGTH);
+    }
+
+    public CompressedFramedTransport(TTransport transport, int threshold, int maxLength) {
+        this.transport = transport;
+        this.threshold = threshold;
+        this.maxLength = maxLength;
+    }
+
+    @Override
+    public void open() throws TTransportException {
+        transport.open();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return transport.isOpen();
+    }
+
+    @Override
+    public void close() {
+        transport.close();
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+        int got = readBuffer.read(buf, off, len);
+        if (got > 0) {
+            return got;
+        }
+        readFrame();
+        return readBuffer.read(buf, off, len);
+    }
+
+    @Override
+    public byte[] getBuffer() {
+        return readBuffer.getBuffer();
+    }
+
+    @Override
+    public int getBufferPosition() {
+        return readBuffer.getBufferPosition();
+    }
+
+    @Override
+    public int getBytesRemainingInBuffer() {
+        return readBuffer.getBytesRemainingInBuffer();
+    }
+
+    @Override
+    public void consumeBuffer(int len) {
+        readBuffer.consumeBuffer(len);
+    }
+
+    private void readFrame() throws TTransportException {
+        transport.readAll(readHeader, 0, 5);
+        int size = TFramedTransport.decodeFrameSize(readHeader) - 1;
+        if (size < 0) {
+            close();
+            throw new TTransportException(TTransportException.CORRUPTED_DATA,
+                    "Read a negative frame size (" + size + ")!");
+        }
+        if (size > maxLength) {
+            close();
+            throw new TTransportException(TTransportException.CORRUPTED_DATA,
+                    "Frame size (" + size + ") larger than max length (" + maxLength + ")!");
+        }
+
+        byte[] payload = new byte[size];
+        transport.readAll(payload, 0, size);
+        if (readHeader[4] == FLAG_RAW) {
+            readBuffer.reset(payload);
+            return;
+        }
+        if (readHeader[4] != FLAG_DEFLATE || size < 4) {
+            close();
+            throw new TTransportException(TTransportException.CORRUPTED_DATA,
+                    "Unknown frame flag (" + readHeader[4] + ")!");
+        }
+
+        int rawSize = TFramedTransport.decodeFrameSize(payload);
+        if (rawSize < 0 || rawSize > maxLength) {
+            close();
+            throw new TTransportException(TTransportException.CORRUPTED_DATA,
+                    "Invalid uncompressed frame size (" + rawSize + ")!");
+        }
+        byte[] raw = new byte[rawSize];
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        try {
+            inflater.setInput(payload, 4, size - 4);
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int r = inflater.inflate(raw, n, rawSize - n);
+                if (r == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += r;
+            }
+            if (n != rawSize) {
+                close();
+                throw new TTransportException(TTransportException.CORRUPTED_DATA,
+                        "Truncated compressed frame (" + n + "/" + rawSize + ")!");
+            }
+        } catch (DataFormatException e) {
+            close();
+            throw new TTransportException(TTransportException.CORRUPTED_DATA, e);
+        }
+        readBuffer.reset(raw);
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+        writeBuffer.write(buf, off, len);
+    }
+
+    @Override
+    public void flush() throws TTransportException {
+        byte[] buf = writeBuffer.get();
+        int len = writeBuffer.len();
+        writeBuffer.reset();
+
+        if (len >= threshold) {
+            compressBuffer.reset();
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            }
+            deflater.reset();
+            deflater.setInput(buf, 0, len);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int n = deflater.deflate(chunk);
+                compressBuffer.write(chunk, 0, n);
+            }
+            if (compressBuffer.len() + 4 < len) {
+                TFramedTransport.encodeFrameSize(compressBuffer.len() + 5, writeHeader);
+                writeHeader[4] = FLAG_DEFLATE;
+                TFramedTransport.encodeFrameSize(len, sizeBuf);
+                transport.write(writeHeader, 0, 5);
+                transport.write(sizeBuf, 0, 4);
+                transport.write(compressBuffer.get(), 0, compressBuffer.len());
+                transport.flush();
+                return;
+            }
+        }
+
+        TFramedTransport.encodeFrameSize(len + 1, writeHeader);
+        writeHeader[4] = FLAG_RAW;
+        transport.write(writeHeader, 0, 5);
+        transport.write(buf, 0, len);
+        transport.flush();
+    }
+}
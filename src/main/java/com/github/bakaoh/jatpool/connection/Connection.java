@@ -4,30 +4,37 @@ import com.github.bakaoh.jatpool.Jatpool.Config;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.thrift.TException;
 import org.apache.thrift.TServiceClient;
 import org.apache.thrift.TServiceClientFactory;
 import org.apache.thrift.protocol.TBinaryProtocol;
 import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TMultiplexedProtocol;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
 import org.apache.thrift.transport.TFramedTransport;
 import org.apache.thrift.transport.TSocket;
 import org.apache.thrift.transport.TTransport;
 import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
 
 /**
  *
  * @author taitt
  */
-public class Connection<Iface> {
+public class Connection {
 
-    private final Iface client;
     private TSocket socket;
     private TTransport transport;
+    private final TProtocol protocol;
+    // a connection is only used by one thread at a time
+    private final Map<String, TServiceClient> clients = new HashMap<String, TServiceClient>();
     private final AtomicBoolean closed = new AtomicBoolean(false);
 
-    public Connection(Host host, Config config, TServiceClientFactory<? extends TServiceClient> factory)
-            throws TTransportException {
+    public Connection(Host host, Config config) throws TTransportException {
         socket = new TSocket(host.getIpAddress(), host.getPort(), config.socketTimeout);
         try {
             socket.getSocket().setTcpNoDelay(true);
@@ -36,16 +43,68 @@ public class Connection<Iface> {
         } catch (SocketException e) {
             // the underlying socket implementation doesn’t support these options
         }
-        transport = config.isFramed ? new TFramedTransport(socket) : socket;
+        transport = getTransportFactory(config).getTransport(socket);
         transport.open();
-        client = (Iface) factory.getClient(config.isCompacted
-                ? new TCompactProtocol(transport)
-                : new TBinaryProtocol(transport));
+        protocol = getProtocolFactory(config).getProtocol(transport);
     }
 
-    public Object execute(Method method, Object[] args) throws TException {
+    private static TTransportFactory getTransportFactory(Config config) {
+        if (config.transportFactory != null) {
+            return config.transportFactory;
+        }
+        return config.isFramed ? new TFramedTransport.Factory() : new TTransportFactory();
+    }
+
+    private static TProtocolFactory getProtocolFactory(Config config) {
+        if (config.protocolFactory != null) {
+            return config.protocolFactory;
+        }
+        return config.isCompacted ? new TCompactProtocol.Factory() : new TBinaryProtocol.Factory();
+    }
+
+    /**
+     * Key of the client of a service in a connection, callers on a hot path
+     * compute it once and pass it to {@link #execute}
+     *
+     * @param factory client factory of the service
+     * @param serviceName name of the service on a multiplexed server, or null
+     * @return
+     */
+    public static String clientKey(TServiceClientFactory<? extends TServiceClient> factory, String serviceName) {
+        return serviceName == null
+                ? factory.getClass().getName()
+                : factory.getClass().getName() + ":" + serviceName;
+    }
+
+    public TServiceClient getClient(TServiceClientFactory<? extends TServiceClient> factory, String serviceName) {
+        return getClient(factory, serviceName, clientKey(factory, serviceName));
+    }
+
+    /**
+     * Get the client of a service bound to this connection, clients are
+     * created on first use and share the same transport
+     *
+     * @param factory client factory of the service
+     * @param serviceName name of the service on a multiplexed server, or null
+     * @param clientKey see {@link #clientKey}
+     * @return
+     */
+    public TServiceClient getClient(TServiceClientFactory<? extends TServiceClient> factory, String serviceName,
+            String clientKey) {
+        TServiceClient client = clients.get(clientKey);
+        if (client == null) {
+            client = factory.getClient(serviceName == null
+                    ? protocol
+                    : new TMultiplexedProtocol(protocol, serviceName));
+            clients.put(clientKey, client);
+        }
+        return client;
+    }
+
+    public Object execute(TServiceClientFactory<? extends TServiceClient> factory, String serviceName,
+            String clientKey, Method method, Object[] args) throws TException {
         try {
-            return method.invoke(client, args);
+            return method.invoke(getClient(factory, serviceName, clientKey), args);
         } catch (IllegalAccessException ex) {
             throw new RuntimeException("Poor implement. ", ex);
         } catch (IllegalArgumentException ex) {
@@ -6,64 +6,96 @@ import java.util.concurrent.*;
 import java.util.concurrent.atomic.*;
 import java.net.SocketTimeoutException;
 import org.apache.thrift.TException;
-import org.apache.thrift.TServiceClient;
-import org.apache.thrift.TServiceClientFactory;
 import org.apache.thrift.transport.TTransportException;
 import com.github.bakaoh.jatpool.exception.*;
+import com.github.bakaoh.jatpool.trace.CallTrace;
 
-public class ConnectionPool<CL> {
+public class ConnectionPool {
 
     private final Host host;
-    private final TServiceClientFactory<? extends TServiceClient> factory;
     private final Config config;
-    private final BlockingQueue<Connection<CL>> availableConnections;
+    private final BlockingQueue<Connection> availableConnections;
     private final AtomicBoolean isShutdown = new AtomicBoolean(false);
-    private final ScheduledExecutorService executor;
+    private final AtomicBoolean isClosed = new AtomicBoolean(false);
+    private final AtomicBoolean isDraining = new AtomicBoolean(false);
+    private final Object drainLock = new Object();
+    private final MaintenanceScheduler scheduler;
     private final RetryBackoffContext retryContext;
     private final BadHostDetector badHostDetector;
     // counter
     private static final AtomicLong poolIdCounter = new AtomicLong(0);
+    private static final Map<Long, ConnectionPool> livePools = new ConcurrentHashMap<Long, ConnectionPool>();
     private final long id = poolIdCounter.incrementAndGet();
     private final AtomicInteger activeCount = new AtomicInteger(0);
     private final AtomicInteger pendingConnections = new AtomicInteger(0);
     private final AtomicInteger blockedThreads = new AtomicInteger(0);
+    // -1 once the last client is gone, the pool can't be acquired again
+    private final AtomicInteger refCount = new AtomicInteger(0);
+    // how often blocked borrowers check for a drain, in milliseconds
+    private static final long DRAIN_CHECK_INTERVAL = 100;
 
-    public ConnectionPool(Host host,
-            TServiceClientFactory<? extends TServiceClient> factory,
-            Config config) {
+    public ConnectionPool(Host host, Config config) {
+        this(host, config, true);
+    }
+
+    /**
+     * @param host
+     * @param config
+     * @param connect open the initial connections now, otherwise the caller
+     * must call {@link #init()} once
+     */
+    public ConnectionPool(Host host, Config config, boolean connect) {
         this.host = host;
-        this.factory = factory;
         this.config = config;
-        this.availableConnections = new LinkedBlockingQueue<Connection<CL>>();
+        this.availableConnections = new LinkedBlockingQueue<Connection>();
         this.retryContext = new RetryBackoffContext();
         this.badHostDetector = new BadHostDetector();
-        this.executor = Executors.newScheduledThreadPool(1, new ThreadFactory() {
-            public Thread newThread(Runnable r) {
-                Thread thread = Executors.defaultThreadFactory().newThread(r);
-                thread.setDaemon(true);
-                return thread;
-            }
-        });
-        this.init();
+        this.scheduler = new MaintenanceScheduler();
+        livePools.put(id, this);
+        if (connect) {
+            this.init();
+        }
     }
 
-    private void init() {
+    /**
+     * Open the initial connections of a pool created without connecting
+     */
+    public void init() {
         int count = config.initConnectionPerHost;
         for (int i = 0, attemptCount = 0; i < count && attemptCount < 100; i++, attemptCount++) {
             try {
                 availableConnections.add(openConnection());
+                if (isShutdown() || isDraining()) {
+                    discardIdleConnections();
+                    return;
+                }
             } catch (PoolException e) {
             } catch (TTransportException e) {
             }
         }
     }
 
-    public Connection<CL> borrow(int timeout) throws PoolException {
+    public Connection borrow(int timeout) throws PoolException {
+        return borrow(timeout, null);
+    }
+
+    /**
+     * Borrow a connection, time spent opening a new one is added to the trace
+     *
+     * @param timeout max time to wait in milliseconds
+     * @param trace the call to record into, may be null
+     * @return
+     * @throws PoolException
+     */
+    public Connection borrow(int timeout, CallTrace trace) throws PoolException {
+        if (isDraining()) {
+            throw new HostDownException("Can't borrow connection. Pool is draining.").setHost(host);
+        }
         if (isShutdown()) {
             throw new HostDownException("Can't borrow connection. Host is down.").setHost(host);
         }
 
-        Connection<CL> connection = null;
+        Connection connection = null;
         long startTime = System.currentTimeMillis();
         try {
             connection = availableConnections.poll();
@@ -71,7 +103,7 @@ public class ConnectionPool<CL> {
                 return connection;
             }
 
-            boolean isOpenning = tryOpenAsync();
+            boolean isOpenning = tryOpenAsync(trace);
 
             if (timeout > 0) {
                 connection = waitForConnection(isOpenning ? config.connectTimeout : timeout);
@@ -86,14 +118,23 @@ public class ConnectionPool<CL> {
         }
     }
 
-    private Connection<CL> waitForConnection(int timeout) throws PoolException {
-        Connection<CL> connection = null;
+    private Connection waitForConnection(int timeout) throws PoolException {
+        Connection connection = null;
         long startTime = System.currentTimeMillis();
         try {
             if (blockedThreads.incrementAndGet() <= config.maxBlockThreadsPerHost) {
-                connection = availableConnections.poll(timeout, TimeUnit.MILLISECONDS);
-                if (connection != null) {
-                    return connection;
+                // wait in slices so a drain fails blocked borrowers right away
+                long remaining = timeout;
+                while (remaining > 0) {
+                    connection = availableConnections.poll(
+                            Math.min(remaining, DRAIN_CHECK_INTERVAL), TimeUnit.MILLISECONDS);
+                    if (connection != null) {
+                        return connection;
+                    }
+                    if (isDraining()) {
+                        throw new HostDownException("Can't borrow connection. Pool is draining.").setHost(host);
+                    }
+                    remaining = timeout - (System.currentTimeMillis() - startTime);
                 }
             } else {
                 throw new PoolTimeoutException("Too many clients blocked on this pool " + blockedThreads.get())
@@ -109,7 +150,12 @@ public class ConnectionPool<CL> {
                 System.currentTimeMillis() - startTime);
     }
 
-    public boolean returnConnection(Connection<CL> connection, TException ce) {
+    public boolean returnConnection(Connection connection, TException ce) {
+        if (isDraining()) {
+            internalCloseConnection(connection);
+            return true;
+        }
+
         if (ce != null) {
             if (ce.getCause() instanceof SocketTimeoutException) {
                 if (badHostDetector.addTimeoutSample()) {
@@ -129,7 +175,7 @@ public class ConnectionPool<CL> {
 
         if (activeCount.get() <= config.maxConnectionPerHost) {
             availableConnections.add(connection);
-            if (isShutdown()) {
+            if (isShutdown() || isDraining()) {
                 discardIdleConnections();
                 return true;
             }
@@ -141,27 +187,29 @@ public class ConnectionPool<CL> {
         return false;
     }
 
-    public boolean closeConnection(Connection<CL> connection) {
+    public boolean closeConnection(Connection connection) {
         internalCloseConnection(connection);
         return true;
     }
 
-    private void internalCloseConnection(Connection<CL> connection) {
+    private void internalCloseConnection(Connection connection) {
         connection.close();
         activeCount.decrementAndGet();
+        if (isDraining()) {
+            signalDrain();
+        }
     }
 
     public void markAsDown(Exception reason) {
         discardIdleConnections();
         if (isShutdown.compareAndSet(false, true)) {
-            executor.schedule(new Runnable() {
+            scheduler.scheduleBlocking(new Runnable() {
                 public void run() {
-                    Thread.currentThread().setName("RetryService : " + host.toString());
-                    if (reconnect()) {
-                        retryContext.success();
-                        isShutdown.set(false);
-                    } else {
-                        executor.schedule(this, retryContext.getNextDelay(), TimeUnit.MILLISECONDS);
+                    if (isClosed() || isDraining()) {
+                        return;
+                    }
+                    if (!reconnect()) {
+                        scheduler.scheduleBlocking(this, retryContext.getNextDelay(), TimeUnit.MILLISECONDS);
                     }
                 }
             }, retryContext.getNextDelay(), TimeUnit.MILLISECONDS);
@@ -169,33 +217,98 @@ public class ConnectionPool<CL> {
     }
 
     private boolean reconnect() {
-        Connection<CL> connection = null;
         try {
             activeCount.incrementAndGet();
-            connection = new Connection<CL>(host, config, factory);
-            availableConnections.add(connection);
-            return true;
+            availableConnections.add(new Connection(host, config));
         } catch (Exception e) {
             activeCount.decrementAndGet();
+            return false;
+        }
+        retryContext.success();
+        isShutdown.set(false);
+        if (isClosed() || isDraining()) {
+            // shut down while connecting, don't bring the pool back up
+            isShutdown.set(true);
+            discardIdleConnections();
+        }
+        return true;
+    }
+
+    /**
+     * Register one more client of this pool
+     *
+     * @return false if the pool is released or closed
+     */
+    public boolean acquire() {
+        while (true) {
+            int count = refCount.get();
+            if (count < 0 || isClosed() || isDraining()) {
+                return false;
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Unregister a client. When the last one is gone the pool stops lending
+     * connections and the caller must shut it down.
+     *
+     * @return true if this was the last client
+     */
+    public boolean release() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                return false;
+            }
+            int next = count == 1 ? -1 : count - 1;
+            if (refCount.compareAndSet(count, next)) {
+                if (next < 0) {
+                    isDraining.set(true);
+                    return true;
+                }
+                return false;
+            }
         }
-        return false;
     }
 
     public void shutdown() {
+        shutdown(0);
+    }
+
+    /**
+     * Stop lending connections, wait for the borrowed ones to be returned
+     * then close everything. Connections still borrowed after the timeout are
+     * closed when they are returned.
+     *
+     * @param drainTimeout max time to wait in milliseconds
+     * @return true if all borrowed connections were returned in time
+     */
+    public boolean shutdown(long drainTimeout) {
+        drain();
+        boolean drained = awaitDrain(drainTimeout);
+        isClosed.set(true);
         isShutdown.set(true);
-        executor.shutdown();
-        markAsDown(null);
+        scheduler.cancel();
+        livePools.remove(id);
+        discardIdleConnections();
+        return drained;
     }
 
-    public Connection<CL> openConnection() throws PoolException, TTransportException {
+    public Connection openConnection() throws PoolException, TTransportException {
+        if (isDraining()) {
+            throw new HostDownException("Can't open new connection. Pool is draining.").setHost(host);
+        }
         if (isShutdown()) {
             throw new HostDownException("Can't open new connection. Host is down.").setHost(host);
         }
 
-        Connection<CL> connection;
+        Connection connection;
         if (activeCount.incrementAndGet() <= config.maxConnectionPerHost) {
             try {
-                connection = new Connection<CL>(host, config, factory);
+                connection = new Connection(host, config);
             } catch (TTransportException e) {
                 connection = null;
                 markAsDown(e);
@@ -215,25 +328,27 @@ public class ConnectionPool<CL> {
         }
     }
 
-    private boolean tryOpenAsync() {
-        Connection<CL> connection = null;
+    private boolean tryOpenAsync(CallTrace trace) {
+        Connection connection = null;
         try {
             if (activeCount.incrementAndGet() <= config.maxConnectionPerHost) {
                 if (pendingConnections.incrementAndGet() > config.maxPendingPerHost) {
                     pendingConnections.decrementAndGet();
                 } else {
+                    long start = trace == null ? 0 : System.nanoTime();
                     try {
-                        connection = new Connection<CL>(host, config, factory);
+                        connection = new Connection(host, config);
                         availableConnections.add(connection);
-                        if (isShutdown()) {
+                        if (isShutdown() || isDraining()) {
                             discardIdleConnections();
                         }
                         return true;
                     } catch (TTransportException ex) {
                         return false;
                     } finally {
-                        if (connection == null) {
-                            pendingConnections.decrementAndGet();
+                        pendingConnections.decrementAndGet();
+                        if (trace != null) {
+                            trace.record(CallTrace.Phase.CONNECT, start);
                         }
                     }
                 }
@@ -247,18 +362,101 @@ public class ConnectionPool<CL> {
     }
 
     private void discardIdleConnections() {
-        List<Connection<CL>> connections = new ArrayList<Connection<CL>>();
+        List<Connection> connections = new ArrayList<Connection>();
         availableConnections.drainTo(connections);
         activeCount.addAndGet(-connections.size());
-        for (Connection<CL> connection : connections) {
+        for (Connection connection : connections) {
             connection.close();
         }
+        if (isDraining()) {
+            signalDrain();
+        }
+    }
+
+    /**
+     * Stop lending connections and close the idle ones, borrowed connections
+     * are closed when they are returned
+     */
+    public void drain() {
+        isDraining.set(true);
+        discardIdleConnections();
+    }
+
+    /**
+     * Wait for all connections to be closed after {@link #drain()}
+     *
+     * @param timeout max time to wait in milliseconds
+     * @return true if all connections were closed in time
+     */
+    public boolean awaitDrain(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (drainLock) {
+            while (activeCount.get() > 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                try {
+                    drainLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void signalDrain() {
+        synchronized (drainLock) {
+            drainLock.notifyAll();
+        }
+    }
+
+    public static List<ConnectionPool> getLivePools() {
+        return new ArrayList<ConnectionPool>(livePools.values());
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public int getOpenCount() {
+        return activeCount.get();
+    }
+
+    public int getIdleCount() {
+        return availableConnections.size();
+    }
+
+    public int getBusyCount() {
+        return activeCount.get() - availableConnections.size() - pendingConnections.get();
+    }
+
+    public int getPendingCount() {
+        return pendingConnections.get();
+    }
+
+    public int getBlockedCount() {
+        return blockedThreads.get();
+    }
+
+    public int getRefCount() {
+        return Math.max(0, refCount.get());
     }
 
     public boolean isShutdown() {
         return isShutdown.get();
     }
 
+    public boolean isDraining() {
+        return isDraining.get();
+    }
+
+    public boolean isClosed() {
+        return isClosed.get();
+    }
+
     public Host getHost() {
         return host;
     }
@@ -276,11 +474,13 @@ public class ConnectionPool<CL> {
         return new StringBuilder().append("ConnectionPool[")
                 .append("host=").append(host).append("-").append(id)
                 .append(",active=").append(!isShutdown())
+                .append(",draining=").append(isDraining() && !isClosed())
                 .append(",open=").append(open)
                 .append(",busy=").append(open - idle - pending)
                 .append(",idle=").append(idle)
                 .append(",blocked=").append(blocked)
                 .append(",pending=").append(pending)
+                .append(",refs=").append(getRefCount())
                 .append("]").toString();
     }
 
@@ -0,0 +1,111 @@
+package com.github.bakaoh.jatpool.connection;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules maintenance tasks (reconnect) of a pool on a timer thread shared
+ * by all pools. Tasks of a pool can be cancelled together.
+ *
+ * The timer only keeps time, blocking work is handed to a bounded I/O pool of
+ * {@link #IO_THREADS} threads: a black-holed host delays the reconnects of
+ * other pools only when more than that many connects are stuck at once.
+ *
+ * @author taitt
+ */
+class MaintenanceScheduler {
+
+    static final int IO_THREADS = 16;
+    private static final ScheduledThreadPoolExecutor EXECUTOR
+            = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("Jatpool-Maintenance-"));
+    private static final ThreadPoolExecutor IO_EXECUTOR = new ThreadPoolExecutor(IO_THREADS, IO_THREADS,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("Jatpool-Connect-"));
+
+    static {
+        IO_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private final Map<ScheduledFuture<?>, Boolean> tasks = new ConcurrentHashMap<ScheduledFuture<?>, Boolean>();
+    private final AtomicBoolean isCancelled = new AtomicBoolean(false);
+
+    public ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return track(EXECUTOR.schedule(task, delay, unit));
+    }
+
+    /**
+     * Run a blocking task on the I/O pool after a delay
+     */
+    public ScheduledFuture<?> scheduleBlocking(final Runnable task, long delay, TimeUnit unit) {
+        return schedule(new Runnable() {
+            public void run() {
+                if (isCancelled()) {
+                    return;
+                }
+                IO_EXECUTOR.execute(new Runnable() {
+                    public void run() {
+                        if (!isCancelled()) {
+                            task.run();
+                        }
+                    }
+                });
+            }
+        }, delay, unit);
+    }
+
+    private ScheduledFuture<?> track(ScheduledFuture<?> future) {
+        for (Iterator<ScheduledFuture<?>> it = tasks.keySet().iterator(); it.hasNext();) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        tasks.put(future, Boolean.TRUE);
+        if (isCancelled.get()) {
+            future.cancel(false);
+            tasks.remove(future);
+        }
+        return future;
+    }
+
+    /**
+     * Cancel all pending tasks, no task can be scheduled afterward
+     */
+    public void cancel() {
+        isCancelled.set(true);
+        for (ScheduledFuture<?> future : tasks.keySet()) {
+            future.cancel(false);
+        }
+        tasks.clear();
+        EXECUTOR.purge();
+    }
+
+    public boolean isCancelled() {
+        return isCancelled.get();
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = Executors.defaultThreadFactory().newThread(r);
+            thread.setName(prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package com.github.bakaoh.jatpool.trace;
+
+/**
+ * Receives the timings of calls made through a Jatpool proxy. Listeners are
+ * called on the calling thread and must be fast and not throw.
+ *
+ * @author taitt
+ */
+public interface CallListener {
+
+    /**
+     * Called each time a phase of a call is over
+     *
+     * @param trace the call
+     * @param phase the phase
+     * @param nanos time spent in this phase
+     */
+    void onPhase(CallTrace trace, CallTrace.Phase phase, long nanos);
+
+    /**
+     * Called once when the call is over, the trace is not modified afterward
+     *
+     * @param trace the call
+     */
+    void onComplete(CallTrace trace);
+}
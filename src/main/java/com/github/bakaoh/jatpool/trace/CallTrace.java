@@ -0,0 +1,143 @@
+package com.github.bakaoh.jatpool.trace;
+
+import com.github.bakaoh.jatpool.connection.Host;
+import java.lang.reflect.Method;
+
+/**
+ * Timings of one call through a Jatpool proxy, summed over all attempts.
+ * Only created when a {@link CallListener} is registered.
+ *
+ * @author taitt
+ */
+public class CallTrace {
+
+    public enum Phase {
+
+        /**
+         * Getting a connection from the pool, includes CONNECT
+         */
+        BORROW,
+        /**
+         * Opening a new connection while borrowing
+         */
+        CONNECT,
+        /**
+         * Sending the request and reading the response
+         */
+        EXECUTE,
+        /**
+         * Time lost in attempts which failed
+         */
+        RETRY,
+        /**
+         * Giving the connection back to the pool
+         */
+        RETURN
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final Method method;
+    private final Host host;
+    private final CallListener[] listeners;
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+    private final long[] phaseNanos = new long[PHASES.length];
+    private long totalNanos = 0;
+    private int attempts = 0;
+    private Throwable error = null;
+
+    public CallTrace(Method method, Host host, CallListener[] listeners) {
+        this.method = method;
+        this.host = host;
+        this.listeners = listeners;
+    }
+
+    /**
+     * Add the time elapsed since a mark to a phase
+     *
+     * @param phase the phase
+     * @param since value of System.nanoTime() when the phase began
+     * @return now, to be used as the mark of the next phase
+     */
+    public long record(Phase phase, long since) {
+        long now = System.nanoTime();
+        long nanos = now - since;
+        phaseNanos[phase.ordinal()] += nanos;
+        for (CallListener listener : listeners) {
+            listener.onPhase(this, phase, nanos);
+        }
+        return now;
+    }
+
+    public void attempt() {
+        attempts++;
+    }
+
+    public void complete(Throwable error) {
+        this.totalNanos = System.nanoTime() - startNanos;
+        this.error = error;
+        for (CallListener listener : listeners) {
+            listener.onComplete(this);
+        }
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    /**
+     * @return service and method name, like Calculator.add
+     */
+    public String getMethodName() {
+        return getMethodName(method);
+    }
+
+    static String getMethodName(Method method) {
+        Class<?> cls = method.getDeclaringClass();
+        Class<?> service = cls.getEnclosingClass() != null ? cls.getEnclosingClass() : cls;
+        return service.getSimpleName() + "." + method.getName();
+    }
+
+    public Host getHost() {
+        return host;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getNanos(Phase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append("CallTrace[")
+                .append(getMethodName())
+                .append(",host=").append(host)
+                .append(",start=").append(startTime)
+                .append(",total=").append(totalNanos / 1000).append("us");
+        for (Phase phase : PHASES) {
+            sb.append(",").append(phase.name().toLowerCase()).append("=")
+                    .append(phaseNanos[phase.ordinal()] / 1000).append("us");
+        }
+        sb.append(",attempts=").append(attempts);
+        if (error != null) {
+            sb.append(",error=").append(error.getClass().getSimpleName());
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.bakaoh.jatpool.trace;
+
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the slowest calls of each method in a fixed size buffer.
+ *
+ * @author taitt
+ */
+public class SlowCallSampler implements CallListener {
+
+    private static final Comparator<CallTrace> SLOWEST_FIRST = new Comparator<CallTrace>() {
+        public int compare(CallTrace a, CallTrace b) {
+            return a.getTotalNanos() < b.getTotalNanos() ? 1 : (a.getTotalNanos() == b.getTotalNanos() ? 0 : -1);
+        }
+    };
+
+    private final int size;
+    private final ConcurrentMap<Method, Bucket> buckets = new ConcurrentHashMap<Method, Bucket>();
+
+    /**
+     * @param size number of calls kept per method
+     */
+    public SlowCallSampler(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid size " + size);
+        }
+        this.size = size;
+    }
+
+    public void onPhase(CallTrace trace, CallTrace.Phase phase, long nanos) {
+    }
+
+    public void onComplete(CallTrace trace) {
+        Bucket bucket = buckets.get(trace.getMethod());
+        if (bucket == null) {
+            Bucket newBucket = new Bucket(size);
+            bucket = buckets.putIfAbsent(trace.getMethod(), newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        bucket.offer(trace);
+    }
+
+    /**
+     * @return the slowest calls of every method, slowest first
+     */
+    public Map<String, List<CallTrace>> getSlowest() {
+        Map<String, List<CallTrace>> result = new TreeMap<String, List<CallTrace>>();
+        for (Map.Entry<Method, Bucket> entry : buckets.entrySet()) {
+            String name = CallTrace.getMethodName(entry.getKey());
+            List<CallTrace> traces = result.get(name);
+            if (traces == null) {
+                traces = new ArrayList<CallTrace>();
+                result.put(name, traces);
+            }
+            traces.addAll(entry.getValue().snapshot());
+            Collections.sort(traces, SLOWEST_FIRST);
+        }
+        return result;
+    }
+
+    public void dump(PrintStream out) {
+        for (Map.Entry<String, List<CallTrace>> entry : getSlowest().entrySet()) {
+            out.println(entry.getKey() + ":");
+            for (CallTrace trace : entry.getValue()) {
+                out.println("  " + trace);
+            }
+        }
+    }
+
+    public void reset() {
+        buckets.clear();
+    }
+
+    private static class Bucket {
+
+        private final CallTrace[] traces;
+        private int count = 0;
+        // total time a call must exceed to enter a full bucket
+        private volatile long threshold = -1;
+
+        Bucket(int size) {
+            this.traces = new CallTrace[size];
+        }
+
+        void offer(CallTrace trace) {
+            if (trace.getTotalNanos() <= threshold) {
+                return;
+            }
+            synchronized (this) {
+                if (count < traces.length) {
+                    traces[count++] = trace;
+                    if (count < traces.length) {
+                        return;
+                    }
+                } else {
+                    int min = indexOfFastest();
+                    if (trace.getTotalNanos() <= traces[min].getTotalNanos()) {
+                        return;
+                    }
+                    traces[min] = trace;
+                }
+                threshold = traces[indexOfFastest()].getTotalNanos();
+            }
+        }
+
+        private int indexOfFastest() {
+            int min = 0;
+            for (int i = 1; i < count; i++) {
+                if (traces[i].getTotalNanos() < traces[min].getTotalNanos()) {
+                    min = i;
+                }
+            }
+            return min;
+        }
+
+        synchronized List<CallTrace> snapshot() {
+            List<CallTrace> result = new ArrayList<CallTrace>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(traces[i]);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package com.github.bakaoh.jatpool.connection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TMemoryBuffer;
+import org.apache.thrift.transport.TTransportException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressedFramedTransportTest {
+
+    private static final int THRESHOLD = 128;
+
+    private TMemoryBuffer wire;
+
+    @Before
+    public void setUp() {
+        wire = new TMemoryBuffer(1024);
+    }
+
+    private static byte[] compressible(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + i % 7);
+        }
+        return data;
+    }
+
+    private static byte[] random(int size) {
+        byte[] data = new byte[size];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+
+    private byte[] roundTrip(byte[] payload) throws TTransportException {
+        CompressedFramedTransport writer = new CompressedFramedTransport(wire, THRESHOLD);
+        writer.write(payload, 0, payload.length);
+        writer.flush();
+
+        CompressedFramedTransport reader = new CompressedFramedTransport(wire, THRESHOLD);
+        byte[] result = new byte[payload.length];
+        reader.readAll(result, 0, result.length);
+        assertEquals(0, reader.getBytesRemainingInBuffer());
+        return result;
+    }
+
+    private byte flagOfNextFrame() {
+        return wire.getArray()[4];
+    }
+
+    private void writeFrame(int flag, byte[] body) throws TTransportException {
+        byte[] size = new byte[4];
+        TFramedTransport.encodeFrameSize(body.length + 1, size);
+        wire.write(size);
+        wire.write(new byte[]{(byte) flag});
+        wire.write(body);
+    }
+
+    private static byte[] deflatedBody(int declaredSize, byte[] raw) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] out = new byte[raw.length + 64];
+        int n = deflater.deflate(out);
+        deflater.end();
+        byte[] body = new byte[4 + n];
+        TFramedTransport.encodeFrameSize(declaredSize, body);
+        System.arraycopy(out, 0, body, 4, n);
+        return body;
+    }
+
+    private void assertCorrupted() {
+        CompressedFramedTransport reader = new CompressedFramedTransport(wire, THRESHOLD, 1024);
+        try {
+            reader.readAll(new byte[1], 0, 1);
+            fail("expected corrupted data");
+        } catch (TTransportException e) {
+            assertEquals(TTransportException.CORRUPTED_DATA, e.getType());
+        }
+    }
+
+    @Test
+    public void emptyPayload() throws TTransportException {
+        CompressedFramedTransport writer = new CompressedFramedTransport(wire, THRESHOLD);
+        writer.flush();
+        assertEquals(5, wire.length());
+        assertEquals(0, flagOfNextFrame());
+    }
+
+    @Test
+    public void belowThresholdIsSentRaw() throws TTransportException {
+        byte[] payload = compressible(THRESHOLD - 1);
+        CompressedFramedTransport writer = new CompressedFramedTransport(wire, THRESHOLD);
+        writer.write(payload, 0, payload.length);
+        writer.flush();
+        assertEquals(0, flagOfNextFrame());
+        assertEquals(5 + payload.length, wire.length());
+
+        byte[] result = new byte[payload.length];
+        new CompressedFramedTransport(wire, THRESHOLD).readAll(result, 0, result.length);
+        assertArrayEquals(payload, result);
+    }
+
+    @Test
+    public void atThresholdIsCompressed() throws TTransportException {
+        byte[] payload = compressible(THRESHOLD);
+        CompressedFramedTransport writer = new CompressedFramedTransport(wire, THRESHOLD);
+        writer.write(payload, 0, payload.length);
+        writer.flush();
+        assertEquals(1, flagOfNextFrame());
+        assertTrue(wire.length() < payload.length);
+
+        byte[] result = new byte[payload.length];
+        new CompressedFramedTransport(wire, THRESHOLD).readAll(result, 0, result.length);
+        assertArrayEquals(payload, result);
+    }
+
+    @Test
+    public void aboveThresholdRoundTrip() throws TTransportException {
+        byte[] payload = compressible(200000);
+        assertArrayEquals(payload, roundTrip(payload));
+    }
+
+    @Test
+    public void incompressibleIsSentRaw() throws TTransportException {
+        byte[] payload = random(THRESHOLD * 4);
+        CompressedFramedTransport writer = new CompressedFramedTransport(wire, THRESHOLD);
+        writer.write(payload, 0, payload.length);
+        writer.flush();
+        assertEquals(0, flagOfNextFrame());
+
+        byte[] result = new byte[payload.length];
+        new CompressedFramedTransport(wire, THRESHOLD).readAll(result, 0, result.length);
+        assertArrayEquals(payload, result);
+    }
+
+    @Test
+    public void consecutiveFramesReuseCodec() throws TTransportException {
+        CompressedFramedTransport writer = new CompressedFramedTransport(wire, THRESHOLD);
+        byte[][] payloads = {compressible(1000), compressible(10), random(500), compressible(5000)};
+        for (byte[] payload : payloads) {
+            writer.write(payload, 0, payload.length);
+            writer.flush();
+        }
+
+        CompressedFramedTransport reader = new CompressedFramedTransport(wire, THRESHOLD);
+        for (byte[] payload : payloads) {
+            byte[] result = new byte[payload.length];
+            reader.readAll(result, 0, result.length);
+            assertArrayEquals(payload, result);
+        }
+    }
+
+    @Test
+    public void codecIsRecreatedAfterClose() throws TTransportException {
+        CompressedFramedTransport writer = new CompressedFramedTransport(wire, THRESHOLD);
+        CompressedFramedTransport reader = new CompressedFramedTransport(wire, THRESHOLD);
+        byte[] payload = compressible(1000);
+        byte[] result = new byte[payload.length];
+        for (int i = 0; i < 2; i++) {
+            writer.write(payload, 0, payload.length);
+            writer.flush();
+            reader.readAll(result, 0, result.length);
+            assertArrayEquals(payload, result);
+            writer.close();
+            reader.close();
+        }
+    }
+
+    @Test
+    public void unknownFlagIsCorrupted() throws TTransportException {
+        writeFrame(7, compressible(10));
+        assertCorrupted();
+    }
+
+    @Test
+    public void negativeFrameSizeIsCorrupted() throws TTransportException {
+        wire.write(new byte[]{0, 0, 0, 0, 0});
+        assertCorrupted();
+    }
+
+    @Test
+    public void frameLargerThanMaxLengthIsCorrupted() throws TTransportException {
+        byte[] size = new byte[4];
+        TFramedTransport.encodeFrameSize(2048, size);
+        wire.write(size);
+        wire.write(new byte[]{0});
+        assertCorrupted();
+    }
+
+    @Test
+    public void compressedFrameWithoutSizeIsCorrupted() throws TTransportException {
+        writeFrame(1, new byte[]{0, 1});
+        assertCorrupted();
+    }
+
+    @Test
+    public void invalidUncompressedSizeIsCorrupted() throws TTransportException {
+        writeFrame(1, deflatedBody(4096, compressible(100)));
+        assertCorrupted();
+    }
+
+    @Test
+    public void truncatedCompressedFrameIsCorrupted() throws TTransportException {
+        writeFrame(1, deflatedBody(200, compressible(100)));
+        assertCorrupted();
+    }
+
+    @Test
+    public void garbageCompressedDataIsCorrupted() throws TTransportException {
+        byte[] body = random(50);
+        TFramedTransport.encodeFrameSize(100, body);
+        writeFrame(1, body);
+        assertCorrupted();
+    }
+}